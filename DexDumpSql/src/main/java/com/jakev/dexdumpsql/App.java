@@ -21,7 +21,9 @@ import com.jakev.dexdumpsql.DexDbHelper;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -31,7 +33,21 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.AnnotationElement;
 import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.StringReference;
+import org.jf.dexlib2.iface.value.AnnotationEncodedValue;
+import org.jf.dexlib2.iface.value.ArrayEncodedValue;
+import org.jf.dexlib2.iface.value.EncodedValue;
+import org.jf.dexlib2.iface.value.StringEncodedValue;
+import org.jf.dexlib2.iface.value.TypeEncodedValue;
 import org.jf.dexlib2.DexFileFactory;
 
 public class App {
@@ -46,8 +62,16 @@ public class App {
     private static final int METHOD_TYPE_DIRECT = 0;
     private static final int METHOD_TYPE_VIRTUAL = 1;
 
+    /* Number of classes between journal checkpoints */
+    private static final int CHECKPOINT_INTERVAL = 100;
+
     private static Options gOptions = new Options();
     private static boolean gDebug = false;
+    private static boolean gResume = false;
+    private static boolean gReferencedStrings = false;
+    private static boolean gMethodMetrics = false;
+    private static PackageFilter gFilter = new PackageFilter();
+    private static int gRunId = 0;
 
     private static void usage() {
 
@@ -138,34 +162,257 @@ public class App {
         }
     }
 
+    private static void addEncodedStrings(Set<String> referenced,
+                                          EncodedValue value) {
+
+        if (value instanceof StringEncodedValue) {
+            referenced.add(((StringEncodedValue)value).getValue());
+        } else if (value instanceof TypeEncodedValue) {
+            referenced.add(((TypeEncodedValue)value).getValue());
+        } else if (value instanceof ArrayEncodedValue) {
+            for (EncodedValue element: ((ArrayEncodedValue)value).getValue()) {
+                addEncodedStrings(referenced, element);
+            }
+        } else if (value instanceof AnnotationEncodedValue) {
+            AnnotationEncodedValue annotation = (AnnotationEncodedValue)value;
+
+            referenced.add(annotation.getType());
+            for (AnnotationElement element: annotation.getElements()) {
+                referenced.add(element.getName());
+                addEncodedStrings(referenced, element.getValue());
+            }
+        }
+    }
+
+    private static void addAnnotationStrings(Set<String> referenced,
+                                    Iterable<? extends Annotation> annotations) {
+
+        /* Covers Signature, EnclosingClass, InnerClass, etc. */
+        for (Annotation annotation: annotations) {
+            referenced.add(annotation.getType());
+            for (AnnotationElement element: annotation.getElements()) {
+                referenced.add(element.getName());
+                addEncodedStrings(referenced, element.getValue());
+            }
+        }
+    }
+
+    private static Set<String> getReferencedStrings() {
+
+        Set<String> referenced = new HashSet<String>();
+
+        for (ClassDef classDef: gDexFile.getClasses()) {
+
+            if (!gFilter.keep(classDef.getType())) {
+                continue;
+            }
+
+            /* The class itself */
+            referenced.add(classDef.getType());
+            if (classDef.getSuperclass() != null) {
+                referenced.add(classDef.getSuperclass());
+            }
+            if (classDef.getSourceFile() != null) {
+                referenced.add(classDef.getSourceFile());
+            }
+            for (String iface: classDef.getInterfaces()) {
+                referenced.add(iface);
+            }
+            addAnnotationStrings(referenced, classDef.getAnnotations());
+
+            /* Fields, and initial values of static fields */
+            for (Field field: classDef.getFields()) {
+                referenced.add(field.getName());
+                referenced.add(field.getType());
+                addAnnotationStrings(referenced, field.getAnnotations());
+
+                EncodedValue value = field.getInitialValue();
+                if (value != null) {
+                    addEncodedStrings(referenced, value);
+                }
+            }
+
+            for (Method method: classDef.getMethods()) {
+                referenced.add(method.getName());
+                referenced.add(method.getReturnType());
+                addAnnotationStrings(referenced, method.getAnnotations());
+
+                for (MethodParameter param: method.getParameters()) {
+                    referenced.add(param.getType());
+                    if (param.getName() != null) {
+                        referenced.add(param.getName());
+                    }
+                    addAnnotationStrings(referenced, param.getAnnotations());
+                }
+
+                /* const-string and friends */
+                MethodImplementation impl = method.getImplementation();
+                if (impl == null) {
+                    continue;
+                }
+
+                for (Instruction instruction: impl.getInstructions()) {
+                    if (instruction instanceof ReferenceInstruction) {
+                        Object reference = ((ReferenceInstruction)instruction).getReference();
+                        if (reference instanceof StringReference) {
+                            referenced.add(((StringReference)reference).getString());
+                        }
+                    }
+                }
+            }
+        }
+
+        return referenced;
+    }
+
     private static int processDex() {
 
         int rtn = 0;
         int i = 0;
+        int lastCheckpoint = -1;
+        int classCount = 0;
+
+        /* Throw away anything written after the last checkpoint */
+        if (gResume) {
+            lastCheckpoint = gDexDb.getLastCheckpoint();
+            if (lastCheckpoint < -1) {
+                System.err.println("[ERROR] Unable to read checkpoint from journal!");
+                return -1;
+            }
 
-        /* Process Strings */
-        if (gDebug) {
-            System.out.println("Adding strings");
+            if (gDebug) {
+                System.out.println("Resuming after class index "+
+                                    Integer.toString(lastCheckpoint));
+            }
+
+            rtn = gDexDb.rollbackToCheckpoint(lastCheckpoint);
+            if (rtn != 0) {
+                System.err.println("[ERROR] Unable to roll back to checkpoint!");
+                return rtn;
+            }
         }
 
+        /* Process Strings */
         int stringCount = gDexFile.getStringCount();
-        List<String> stringValues = new ArrayList<String>();
+        String stringsDetail = gResume ? gDexDb.getJournalDetail("strings") : null;
+        int journalStringCount = -1;
+
+        /* A bad count is treated like a missing entry, rebuild strings */
+        if (stringsDetail != null) {
+            try {
+                journalStringCount = Integer.parseInt(stringsDetail);
+            } catch (NumberFormatException e) {
+                System.err.println("[WARNING] Bad strings journal entry '"+
+                                    stringsDetail+"', rebuilding strings.");
+            }
+        }
 
-        while (i < stringCount) {
-            stringValues.add(gDexFile.getString(i));
-            i++;
+        if (journalStringCount >= 0) {
+            if (gDebug) {
+                System.out.println("Strings already added, skipping");
+            }
+            stringCount = journalStringCount;
+        } else {
+            Set<String> referenced = null;
+
+            if (gReferencedStrings) {
+                if (gDebug) {
+                    System.out.println("Collecting referenced strings");
+                }
+                referenced = getReferencedStrings();
+            }
+
+            if (gDebug) {
+                System.out.println("Adding strings");
+            }
+
+            List<String> stringValues = new ArrayList<String>();
+
+            while (i < stringCount) {
+                String stringValue = gDexFile.getString(i);
+                if (referenced == null || referenced.contains(stringValue)) {
+                    stringValues.add(stringValue);
+                }
+                i++;
+            }
+            stringCount = stringValues.size();
+
+            /* A partial strings table is not checkpointed, so start over */
+            rtn = gDexDb.clearStrings();
+            rtn |= gDexDb.addStrings(stringValues);
+            if (rtn != 0) {
+                System.err.println("[ERROR] Unable to add strings!");
+                return rtn;
+            }
+
+            rtn = gDexDb.addJournalEntry(gRunId, "strings", -1,
+                                         Integer.toString(stringCount));
+            if (rtn != 0) {
+                return rtn;
+            }
         }
-        gDexDb.addStrings(stringValues);
 
         i = 0;
 
-        /* Process each class */
+        /* Process each class, keeping the DEX index as the class id */
         for (ClassDef classDef: gDexFile.getClasses()) {
 
+            if (!gFilter.keep(classDef.getType())) {
+                i++;
+                continue;
+            }
+            classCount++;
+
+            if (i <= lastCheckpoint) {
+                i++;
+                continue;
+            }
+
             rtn |= processClass(i, classDef);
+
+            /* Only checkpoint while every class so far made it in */
+            if (rtn == 0 && classCount % CHECKPOINT_INTERVAL == 0) {
+                rtn = gDexDb.addJournalEntry(gRunId, "checkpoint", i, "");
+            }
             i++;
         }
 
+        if (rtn != 0) {
+            return rtn;
+        }
+
+        return verifyDex(stringCount, classCount);
+    }
+
+    private static int verifyDex(int stringCount, int classCount) {
+
+        int rtn = 0;
+        int dbStringCount = gDexDb.getRowCount("strings");
+        int dbClassCount = gDexDb.getRowCount("classes");
+
+        if (gDebug) {
+            System.out.println("Verifying DB contents.");
+        }
+
+        if (dbStringCount != stringCount) {
+            System.err.println("[ERROR] String count mismatch: DEX has "+
+                                Integer.toString(stringCount)+", DB has "+
+                                Integer.toString(dbStringCount));
+            rtn = -1;
+        }
+
+        if (dbClassCount != classCount) {
+            System.err.println("[ERROR] Class count mismatch: DEX has "+
+                                Integer.toString(classCount)+", DB has "+
+                                Integer.toString(dbClassCount));
+            rtn = -1;
+        }
+
+        if (rtn == 0) {
+            rtn = gDexDb.addJournalEntry(gRunId, "complete", -1,
+                                         Integer.toString(classCount));
+        }
+
         return rtn;
     }
 
@@ -227,6 +474,8 @@ public class App {
         String inputFileName = "";
         String dexFileName = "classes.dex";
         String dexDbName = "";
+        String runDetail = "";
+        String lastRunDetail = null;
         int sdkVersion = 0;
 
         CommandLineParser parser = new BasicParser();
@@ -234,9 +483,14 @@ public class App {
 
         gOptions.addOption("a", true, "Android API level to use.");
         gOptions.addOption("d", false, "Show debugging information.");
+        gOptions.addOption("e", true, "Exclude package(s), comma separated (e.g. android.support.*).");
+        gOptions.addOption("f", true, "Only include package(s), comma separated (e.g. com.vendor.*).");
         gOptions.addOption("h", false, "Show help screen.");
         gOptions.addOption("i", true, "Input DEX/ODEX/JAR file.");
+        gOptions.addOption("m", false, "Compute per-method code metrics.");
         gOptions.addOption("o", true, "Output DB file.");
+        gOptions.addOption("r", false, "Resume an interrupted run from the output DB's journal.");
+        gOptions.addOption("s", false, "Only add strings used by included classes (names, types, annotations, constants).");
         gOptions.addOption("x", true, "Name of DEX file in ZIP/JAR.");
 
         try {
@@ -253,6 +507,18 @@ public class App {
             if (cmd.hasOption("d"))
                 gDebug = true;
 
+            if (cmd.hasOption("m"))
+                gMethodMetrics = true;
+
+            if (cmd.hasOption("r"))
+                gResume = true;
+
+            if (cmd.hasOption("s"))
+                gReferencedStrings = true;
+
+            gFilter.addIncludes(cmd.getOptionValues("f"));
+            gFilter.addExcludes(cmd.getOptionValues("e"));
+
             if (!cmd.hasOption("i") || !cmd.hasOption("o") || !cmd.hasOption("a")) {
                 System.err.println("[ERROR] Input, output, and API level parameters are required!");
                 usage();
@@ -295,12 +561,15 @@ public class App {
 
         if (gDebug) { System.out.println("Creating DexDbHelper."); }
         gDexDb = new DexDbHelper(dexDbName);
-
-        if (gDebug) { System.out.println("Droping data from DB (if exists)."); }
-        rtn = gDexDb.dropTables();
-        if (rtn != 0) {
-            System.err.println("[ERROR] Error dropping tables!");
-            System.exit(rtn);
+        gDexDb.setMethodMetrics(gMethodMetrics);
+
+        if (!gResume) {
+            if (gDebug) { System.out.println("Droping data from DB (if exists)."); }
+            rtn = gDexDb.dropTables();
+            if (rtn != 0) {
+                System.err.println("[ERROR] Error dropping tables!");
+                System.exit(rtn);
+            }
         }
       
         if (gDebug) { System.out.println("About to create tables..."); }
@@ -310,6 +579,37 @@ public class App {
             System.exit(rtn);
         }
 
+        runDetail = inputFile.getAbsolutePath()+":"+dexFileName;
+        if (!gFilter.isEmpty() || gReferencedStrings) {
+            runDetail += " "+gFilter.toString()+(gReferencedStrings ? " s" : "");
+        }
+        if (gMethodMetrics) {
+            runDetail += " m";
+        }
+
+        if (gResume) {
+            /* Check the input first, a complete DB may be for another one */
+            lastRunDetail = gDexDb.getJournalDetail("start");
+            if (lastRunDetail != null && !lastRunDetail.equals(runDetail)) {
+                System.err.println("[ERROR] DB was started from '"+lastRunDetail+
+                                   "', cannot resume with '"+runDetail+"'!");
+                gDexDb.closeDatabase();
+                System.exit(-6);
+            }
+
+            if (gDexDb.getJournalDetail("complete") != null) {
+                System.out.println("DB already complete, nothing to resume.");
+                gDexDb.closeDatabase();
+                System.exit(0);
+            }
+        }
+
+        gRunId = gDexDb.startRun();
+        if (gRunId < 0 || gDexDb.addJournalEntry(gRunId, "start", -1, runDetail) != 0) {
+            System.err.println("[ERROR] Unable to start journal run!");
+            System.exit(-7);
+        }
+
         if (gDebug) { System.out.println("About to process DEX..."); }
         rtn = processDex();
         if (rtn != 0) {
@@ -318,10 +618,9 @@ public class App {
 
         /* Close it down. */
         if (gDebug) { System.out.println("Closing database."); }
-        rtn = gDexDb.closeDatabase();
-        if (rtn != 0) {
+        if (gDexDb.closeDatabase() != 0) {
             System.err.println("[ERROR] Could not close database!");
-            System.exit(rtn);
+            System.exit(-1);
         }
         System.exit(rtn);
     }
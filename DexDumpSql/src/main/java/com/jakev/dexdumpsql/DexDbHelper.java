@@ -16,14 +16,20 @@
  */
 package com.jakev.dexdumpsql;
 
+import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.ExceptionHandler;
 import org.jf.dexlib2.iface.Field;
 import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
 import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.instruction.Instruction;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.Statement;
 import java.sql.SQLException;
 import java.util.List;
@@ -33,6 +39,15 @@ public class DexDbHelper {
     public Connection con = null; 
     public Statement stmt = null;
 
+    private boolean methodMetrics = false;
+
+    /* Tied to the methods row inserted just before it */
+    private static final String METRICS_SQL =
+                     "INSERT INTO method_metrics (method_id, class_id, registers, " +
+                     "code_units, instructions, tries, catches, invokes, " +
+                     "new_instances, const_strings, switches) " +
+                     "VALUES (last_insert_rowid(), ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
     public DexDbHelper(String outputFileName ) {
 
         try {
@@ -51,6 +66,11 @@ public class DexDbHelper {
         }
     }
 
+    public void setMethodMetrics(boolean enabled) {
+
+        methodMetrics = enabled;
+    }
+
     public int createTables() {
 
         int rtn = 0;
@@ -59,13 +79,13 @@ public class DexDbHelper {
         try {
 
             /* Strings Table */
-            sql = "CREATE TABLE strings " +
+            sql = "CREATE TABLE IF NOT EXISTS strings " +
                          "(id INTEGER PRIMARY KEY NOT NULL," +
                          " name           TEXT    NOT NULL)";
             stmt.executeUpdate(sql);
 
             /* Classes Table */
-            sql = "CREATE TABLE classes " +
+            sql = "CREATE TABLE IF NOT EXISTS classes " +
                          "(id INTEGER PRIMARY KEY NOT NULL," +
                          " name           TEXT    NOT NULL," + 
                          " access_flags   INTEGER NOT NULL," + 
@@ -73,7 +93,7 @@ public class DexDbHelper {
             stmt.executeUpdate(sql);
 
             /* Static Fields Table */
-            sql = "CREATE TABLE static_fields " +
+            sql = "CREATE TABLE IF NOT EXISTS static_fields " +
                          "(id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
                          " name           TEXT    NOT NULL," + 
                          " type           TEXT    NOT NULL," + 
@@ -83,7 +103,7 @@ public class DexDbHelper {
             stmt.executeUpdate(sql);
 
             /* Instance Fields Table */
-            sql = "CREATE TABLE instance_fields " +
+            sql = "CREATE TABLE IF NOT EXISTS instance_fields " +
                          "(id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
                          " name           TEXT    NOT NULL," + 
                          " type           TEXT    NOT NULL," + 
@@ -93,7 +113,7 @@ public class DexDbHelper {
             stmt.executeUpdate(sql);
 
             /* Methods Table */
-            sql = "CREATE TABLE methods " +
+            sql = "CREATE TABLE IF NOT EXISTS methods " +
                          "(id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
                          " name          TEXT    NOT NULL," + 
                          " type          TEXT    NOT NULL," + 
@@ -103,6 +123,38 @@ public class DexDbHelper {
                          " FOREIGN KEY(class_id) REFERENCES class(id))";
             stmt.executeUpdate(sql);
 
+            /* Method Metrics Table (only methods with code) */
+            sql = "CREATE TABLE IF NOT EXISTS method_metrics " +
+                         "(method_id     INTEGER PRIMARY KEY NOT NULL," +
+                         " class_id      INTEGER NOT NULL," +
+                         " registers     INTEGER NOT NULL," +
+                         " code_units    INTEGER NOT NULL," +
+                         " instructions  INTEGER NOT NULL," +
+                         " tries         INTEGER NOT NULL," +
+                         " catches       INTEGER NOT NULL," +
+                         " invokes       INTEGER NOT NULL," +
+                         " new_instances INTEGER NOT NULL," +
+                         " const_strings INTEGER NOT NULL," +
+                         " switches      INTEGER NOT NULL," +
+                         " FOREIGN KEY(method_id) REFERENCES methods(id))";
+            stmt.executeUpdate(sql);
+
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS method_metrics_class_id " +
+                               "ON method_metrics(class_id)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS method_metrics_code_units " +
+                               "ON method_metrics(code_units)");
+
+            /* Journal Table */
+            sql = "CREATE TABLE IF NOT EXISTS journal " +
+                         "(id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
+                         " run_id        INTEGER NOT NULL," +
+                         " event         TEXT    NOT NULL," +
+                         " class_idx     INTEGER NOT NULL," +
+                         " detail        TEXT    NOT NULL," +
+                         " timestamp     INTEGER NOT NULL)";
+            stmt.executeUpdate(sql);
+
+            con.commit();
         } catch (SQLException e) {
             System.err.println(e);
             rtn = -1;
@@ -121,6 +173,8 @@ public class DexDbHelper {
             stmt.executeUpdate("DROP TABLE IF EXISTS static_fields");
             stmt.executeUpdate("DROP TABLE IF EXISTS instance_fields");
             stmt.executeUpdate("DROP TABLE IF EXISTS methods");
+            stmt.executeUpdate("DROP TABLE IF EXISTS method_metrics");
+            stmt.executeUpdate("DROP TABLE IF EXISTS journal");
 
         } catch (SQLException e) {
             System.err.println(e);
@@ -261,6 +315,11 @@ public class DexDbHelper {
 
         try {
             PreparedStatement pStmt = con.prepareStatement(sql);
+            PreparedStatement mStmt = null;
+
+            if (methodMetrics) {
+                mStmt = con.prepareStatement(METRICS_SQL);
+            }
 
             for (Method method: classDef.getVirtualMethods()) {
 
@@ -281,6 +340,13 @@ public class DexDbHelper {
 
                 pStmt.executeUpdate();
 
+                if (mStmt != null) {
+                    MethodImplementation impl = method.getImplementation();
+                    if (impl != null) {
+                        addMethodMetrics(mStmt, classIdx, impl);
+                    }
+                }
+
                 con.commit();
             }
 
@@ -305,6 +371,11 @@ public class DexDbHelper {
 
         try {
             PreparedStatement pStmt = con.prepareStatement(sql);
+            PreparedStatement mStmt = null;
+
+            if (methodMetrics) {
+                mStmt = con.prepareStatement(METRICS_SQL);
+            }
 
             for (Method method: classDef.getDirectMethods()) {
 
@@ -325,6 +396,13 @@ public class DexDbHelper {
 
                 pStmt.executeUpdate();
 
+                if (mStmt != null) {
+                    MethodImplementation impl = method.getImplementation();
+                    if (impl != null) {
+                        addMethodMetrics(mStmt, classIdx, impl);
+                    }
+                }
+
                 con.commit();
             }
 
@@ -335,4 +413,207 @@ public class DexDbHelper {
 
         return rtn;
     }
+
+    private void addMethodMetrics(PreparedStatement mStmt, int classIdx,
+                                  MethodImplementation impl) throws SQLException {
+
+        int codeUnits = 0;
+        int instructions = 0;
+        int catches = 0;
+        int invokes = 0;
+        int newInstances = 0;
+        int constStrings = 0;
+        int switches = 0;
+
+        for (Instruction instruction: impl.getInstructions()) {
+
+            Opcode opcode = instruction.getOpcode();
+            codeUnits += instruction.getCodeUnits();
+
+            /* Switch and array payloads are data, not instructions */
+            if (opcode.name.endsWith("-payload")) {
+                continue;
+            }
+            instructions++;
+
+            if (opcode.name.startsWith("invoke-") ||
+                opcode.name.startsWith("execute-inline")) {
+                invokes++;
+            } else if (opcode == Opcode.NEW_INSTANCE) {
+                newInstances++;
+            } else if (opcode == Opcode.CONST_STRING ||
+                       opcode == Opcode.CONST_STRING_JUMBO) {
+                constStrings++;
+            } else if (opcode == Opcode.PACKED_SWITCH ||
+                       opcode == Opcode.SPARSE_SWITCH) {
+                switches++;
+            }
+        }
+
+        List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks = impl.getTryBlocks();
+        for (TryBlock<? extends ExceptionHandler> tryBlock: tryBlocks) {
+            catches += tryBlock.getExceptionHandlers().size();
+        }
+
+        mStmt.setInt(1, classIdx);
+        mStmt.setInt(2, impl.getRegisterCount());
+        mStmt.setInt(3, codeUnits);
+        mStmt.setInt(4, instructions);
+        mStmt.setInt(5, tryBlocks.size());
+        mStmt.setInt(6, catches);
+        mStmt.setInt(7, invokes);
+        mStmt.setInt(8, newInstances);
+        mStmt.setInt(9, constStrings);
+        mStmt.setInt(10, switches);
+
+        mStmt.executeUpdate();
+    }
+
+    public int startRun() {
+
+        int runId = -1;
+
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT MAX(run_id) FROM journal");
+
+            /* MAX() of an empty table is NULL, which reads as 0 */
+            if (rs.next()) {
+                runId = rs.getInt(1) + 1;
+            }
+            rs.close();
+        } catch (SQLException e) {
+            System.err.println(e);
+            runId = -1;
+        }
+
+        return runId;
+    }
+
+    public int addJournalEntry(int runId, String event, int classIdx,
+                               String detail) {
+
+        int rtn = 0;
+        String sql = "INSERT INTO journal (run_id, event, class_idx, detail, timestamp) " +
+                     "VALUES (?, ?, ?, ?, ?)";
+
+        try {
+            PreparedStatement pStmt = con.prepareStatement(sql);
+
+            pStmt.setInt(1, runId);
+            pStmt.setString(2, event);
+            pStmt.setInt(3, classIdx);
+            pStmt.setString(4, detail);
+            pStmt.setLong(5, System.currentTimeMillis() / 1000);
+
+            pStmt.executeUpdate();
+
+            /* Commits everything written since the last entry as well */
+            con.commit();
+        } catch (SQLException e) {
+            System.err.println(e);
+            rtn = -1;
+        }
+
+        return rtn;
+    }
+
+    public String getJournalDetail(String event) {
+
+        String detail = null;
+        String sql = "SELECT detail FROM journal WHERE event = ? " +
+                     "ORDER BY id DESC LIMIT 1";
+
+        try {
+            PreparedStatement pStmt = con.prepareStatement(sql);
+            pStmt.setString(1, event);
+
+            ResultSet rs = pStmt.executeQuery();
+            if (rs.next()) {
+                detail = rs.getString(1);
+            }
+            rs.close();
+        } catch (SQLException e) {
+            System.err.println(e);
+        }
+
+        return detail;
+    }
+
+    public int getLastCheckpoint() {
+
+        int classIdx = -1;
+        String sql = "SELECT MAX(class_idx) FROM journal WHERE event = 'checkpoint'";
+
+        try {
+            ResultSet rs = stmt.executeQuery(sql);
+
+            if (rs.next()) {
+                classIdx = rs.getInt(1);
+                if (rs.wasNull()) {
+                    classIdx = -1;
+                }
+            }
+            rs.close();
+        } catch (SQLException e) {
+            System.err.println(e);
+            classIdx = -2;
+        }
+
+        return classIdx;
+    }
+
+    public int rollbackToCheckpoint(int classIdx) {
+
+        int rtn = 0;
+        String idx = Integer.toString(classIdx);
+
+        try {
+            /* Anything past the checkpoint may be a partially written class */
+            stmt.executeUpdate("DELETE FROM classes WHERE id > "+idx);
+            stmt.executeUpdate("DELETE FROM static_fields WHERE class_id > "+idx);
+            stmt.executeUpdate("DELETE FROM instance_fields WHERE class_id > "+idx);
+            stmt.executeUpdate("DELETE FROM methods WHERE class_id > "+idx);
+            stmt.executeUpdate("DELETE FROM method_metrics WHERE class_id > "+idx);
+            con.commit();
+        } catch (SQLException e) {
+            System.err.println(e);
+            rtn = -1;
+        }
+
+        return rtn;
+    }
+
+    public int clearStrings() {
+
+        int rtn = 0;
+
+        try {
+            stmt.executeUpdate("DELETE FROM strings");
+            con.commit();
+        } catch (SQLException e) {
+            System.err.println(e);
+            rtn = -1;
+        }
+
+        return rtn;
+    }
+
+    public int getRowCount(String tableName) {
+
+        int count = -1;
+
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM "+tableName);
+
+            if (rs.next()) {
+                count = rs.getInt(1);
+            }
+            rs.close();
+        } catch (SQLException e) {
+            System.err.println(e);
+            count = -1;
+        }
+
+        return count;
+    }
 }
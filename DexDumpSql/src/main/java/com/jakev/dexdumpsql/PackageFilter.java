@@ -0,0 +1,140 @@
+/*
+ * Android DEX to Sqlite3 DB utility
+ * Copyright 2013-2014 Jake Valletta (@jake_valletta)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jakev.dexdumpsql;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/*
+ * Include/exclude package filter, matched against raw type descriptors
+ * (e.g. "Lcom/vendor/Foo;") so filtered classes never get converted.
+ *
+ * "com.vendor" and "com.vendor.*" both match the package and everything
+ * below it; "com.vend*" is a plain prefix match. Any other '*' matches
+ * within a single package name, so "com.*.ads" matches "com.foo.ads"
+ * and everything below it. Plain prefixes skip the regex entirely.
+ */
+public class PackageFilter {
+
+    private List<String> includes = new ArrayList<String>();
+    private List<String> excludes = new ArrayList<String>();
+    private List<Pattern> includeGlobs = new ArrayList<Pattern>();
+    private List<Pattern> excludeGlobs = new ArrayList<Pattern>();
+
+    static String packageToPrefix(String pkg) {
+
+        String prefix = pkg.trim();
+
+        if (prefix.endsWith(".*")) {
+            prefix = prefix.substring(0, prefix.length() - 2) + ".";
+        } else if (prefix.endsWith("*")) {
+            prefix = prefix.substring(0, prefix.length() - 1);
+        } else {
+            prefix = prefix + ".";
+        }
+
+        return "L" + prefix.replace('.', '/');
+    }
+
+    static Pattern prefixToPattern(String prefix) {
+
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        int star = 0;
+
+        while ((star = prefix.indexOf('*', start)) != -1) {
+            sb.append(Pattern.quote(prefix.substring(start, star)));
+            sb.append("[^/;]*");
+            start = star + 1;
+        }
+        sb.append(Pattern.quote(prefix.substring(start)));
+
+        return Pattern.compile(sb.toString());
+    }
+
+    private static void addPackages(List<String> prefixes, List<Pattern> globs,
+                                    String[] packages) {
+
+        if (packages == null) {
+            return;
+        }
+
+        /* Each value may itself be a comma separated list */
+        for (String value : packages) {
+            for (String pkg : value.split(",")) {
+                if (pkg.trim().length() == 0) {
+                    continue;
+                }
+
+                String prefix = packageToPrefix(pkg);
+                if (prefix.indexOf('*') == -1) {
+                    prefixes.add(prefix);
+                } else {
+                    globs.add(prefixToPattern(prefix));
+                }
+            }
+        }
+    }
+
+    private static boolean matches(List<String> prefixes, List<Pattern> globs,
+                                   String descriptor) {
+
+        for (String prefix : prefixes) {
+            if (descriptor.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (Pattern glob : globs) {
+            if (glob.matcher(descriptor).lookingAt()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void addIncludes(String[] packages) {
+
+        addPackages(includes, includeGlobs, packages);
+    }
+
+    public void addExcludes(String[] packages) {
+
+        addPackages(excludes, excludeGlobs, packages);
+    }
+
+    public boolean isEmpty() {
+
+        return includes.isEmpty() && excludes.isEmpty() &&
+               includeGlobs.isEmpty() && excludeGlobs.isEmpty();
+    }
+
+    public boolean keep(String descriptor) {
+
+        if ((!includes.isEmpty() || !includeGlobs.isEmpty()) &&
+            !matches(includes, includeGlobs, descriptor)) {
+            return false;
+        }
+        return !matches(excludes, excludeGlobs, descriptor);
+    }
+
+    public String toString() {
+
+        return "+" + includes.toString() + includeGlobs.toString() +
+               " -" + excludes.toString() + excludeGlobs.toString();
+    }
+}
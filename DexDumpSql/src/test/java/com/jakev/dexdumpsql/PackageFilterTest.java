@@ -0,0 +1,84 @@
+package com.jakev.dexdumpsql;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for PackageFilter.
+ */
+public class PackageFilterTest 
+    extends TestCase
+{
+    public PackageFilterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PackageFilterTest.class );
+    }
+
+    public void testEmptyKeepsAll()
+    {
+        PackageFilter filter = new PackageFilter();
+
+        assertTrue( filter.isEmpty() );
+        assertTrue( filter.keep( "Landroid/app/Activity;" ) );
+    }
+
+    public void testInclude()
+    {
+        PackageFilter filter = new PackageFilter();
+        filter.addIncludes( new String[] { "com.vendor.*" } );
+
+        assertTrue( filter.keep( "Lcom/vendor/Foo;" ) );
+        assertTrue( filter.keep( "Lcom/vendor/sub/Bar$1;" ) );
+        assertFalse( filter.keep( "Lcom/vendorx/Foo;" ) );
+        assertFalse( filter.keep( "Landroid/app/Activity;" ) );
+    }
+
+    public void testExcludeWins()
+    {
+        PackageFilter filter = new PackageFilter();
+        filter.addIncludes( new String[] { "android" } );
+        filter.addExcludes( new String[] { "android.support,android.test" } );
+
+        assertTrue( filter.keep( "Landroid/app/Activity;" ) );
+        assertFalse( filter.keep( "Landroid/support/v4/app/Fragment;" ) );
+        assertFalse( filter.keep( "Landroid/test/Foo;" ) );
+    }
+
+    public void testPlainPrefix()
+    {
+        PackageFilter filter = new PackageFilter();
+        filter.addExcludes( new String[] { "com.goo*" } );
+
+        assertFalse( filter.keep( "Lcom/google/Foo;" ) );
+        assertTrue( filter.keep( "Lcom/example/Foo;" ) );
+    }
+
+    public void testGlob()
+    {
+        PackageFilter filter = new PackageFilter();
+        filter.addIncludes( new String[] { "com.*.ads" } );
+
+        assertFalse( filter.isEmpty() );
+        assertTrue( filter.keep( "Lcom/foo/ads/Banner;" ) );
+        assertTrue( filter.keep( "Lcom/foo/ads/sub/Banner$1;" ) );
+        assertFalse( filter.keep( "Lcom/foo/adsx/Banner;" ) );
+        assertFalse( filter.keep( "Lcom/foo/bar/ads/Banner;" ) );
+        assertFalse( filter.keep( "Lorg/foo/ads/Banner;" ) );
+    }
+
+    public void testLeadingGlobExclude()
+    {
+        PackageFilter filter = new PackageFilter();
+        filter.addExcludes( new String[] { "*.ads" } );
+
+        assertFalse( filter.keep( "Lvendor/ads/Banner;" ) );
+        assertTrue( filter.keep( "Lvendor/app/Main;" ) );
+        assertTrue( filter.keep( "Lcom/foo/ads/Banner;" ) );
+    }
+}